@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.elasticsearch.ingest.plugin;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * A bounded cache with an expire-after-write policy, tuned for a read-mostly workload where a small set of hot keys is
+ * read from many threads at once.
+ *
+ * Reads never block: a hit is a single {@link ConcurrentHashMap#get(Object)} plus a volatile read. Recency is tracked
+ * with a coarse access timestamp that is only written back when it is older than {@link #RECENCY_GRANULARITY_NANOS},
+ * so hot entries do not turn every read into a shared write.
+ *
+ * Entries are also queued in write order. On each write, the head of that queue is cleaned up: entries past their
+ * retention are purged, and while the cache is over its maximum size, entries are evicted with a second chance policy
+ * (an entry read since it was queued is moved back to the tail instead). Each write thus only does an amortized
+ * constant amount of work, and a write never waits for another thread already cleaning up.
+ *
+ * Expired entries are not returned by {@link #get(Object)}, but are retained for {@code retainStaleNanos} after their
+ * expiry so that callers can revalidate them through {@link #getStale(Object)}.
+ *
+ * A {@code maximumSize} or {@code expireAfterWriteNanos} of {@code 0} disables the related policy, as with the
+ * Elasticsearch {@link org.elasticsearch.common.cache.Cache} this class replaces.
+ *
+ * @param <K> the key type.
+ * @param <V> the value type.
+ */
+class ConcurrentLruCache<K, V> {
+
+    static final long RECENCY_GRANULARITY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final ConcurrentHashMap<K, Entry<K, V>> entries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry<K, V>> writeOrder = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock cleanUpLock = new ReentrantLock();
+    private final int maximumSize;
+    private final long expireAfterWriteNanos;
+    private final long retainStaleNanos;
+    private final LongSupplier nanoTime;
+
+    ConcurrentLruCache(int maximumSize, long expireAfterWriteNanos, long retainStaleNanos) {
+        this(maximumSize, expireAfterWriteNanos, retainStaleNanos, System::nanoTime);
+    }
+
+    ConcurrentLruCache(int maximumSize, long expireAfterWriteNanos, long retainStaleNanos, LongSupplier nanoTime) {
+        this.maximumSize = maximumSize;
+        this.expireAfterWriteNanos = expireAfterWriteNanos;
+        this.retainStaleNanos = retainStaleNanos;
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * Returns the value associated with the key, or {@code null} if there is none or if it has expired.
+     */
+    V get(K key) {
+        final Entry<K, V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        final long now = nanoTime.getAsLong();
+        if (isExpired(entry, now)) {
+            return null;
+        }
+        if (now - entry.accessTime > RECENCY_GRANULARITY_NANOS) {
+            entry.accessTime = now;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Returns the value associated with the key, even if it has expired, or {@code null} if there is none or if it has
+     * been expired for more than {@code retainStaleNanos}.
+     */
+    V getStale(K key) {
+        final Entry<K, V> entry = entries.get(key);
+        return entry != null && !isPurgeable(entry, nanoTime.getAsLong()) ? entry.value : null;
+    }
+
+    /**
+     * Associates the value with the key, replacing any previous value.
+     */
+    void put(K key, V value) {
+        final Entry<K, V> entry = new Entry<>(key, value, nanoTime.getAsLong());
+        entries.put(key, entry);
+        writeOrder.offer(entry);
+        cleanUp(entry.writeTime);
+    }
+
+    /**
+     * Associates the value with the key only if there is no live value for it yet.
+     */
+    void putIfAbsent(K key, V value) {
+        final Entry<K, V> entry = new Entry<>(key, value, nanoTime.getAsLong());
+        final Entry<K, V> previous = entries.putIfAbsent(key, entry);
+        if (previous == null || (isExpired(previous, entry.writeTime) && entries.replace(key, previous, entry))) {
+            writeOrder.offer(entry);
+        }
+        cleanUp(entry.writeTime);
+    }
+
+    int count() {
+        return entries.size();
+    }
+
+    private boolean isExpired(Entry<K, V> entry, long now) {
+        return expireAfterWriteNanos > 0 && now - entry.writeTime > expireAfterWriteNanos;
+    }
+
+    private boolean isPurgeable(Entry<K, V> entry, long now) {
+        return expireAfterWriteNanos > 0 && now - entry.writeTime > expireAfterWriteNanos + retainStaleNanos;
+    }
+
+    private void cleanUp(long now) {
+        if (!cleanUpLock.tryLock()) {
+            // Another writer is already cleaning up
+            return;
+        }
+        try {
+            Entry<K, V> eldest;
+            while ((eldest = writeOrder.peek()) != null) {
+                if (entries.get(eldest.key) != eldest) {
+                    // Replaced or removed since it has been queued
+                    writeOrder.poll();
+                } else if (isPurgeable(eldest, now)) {
+                    writeOrder.poll();
+                    entries.remove(eldest.key, eldest);
+                } else if (maximumSize > 0 && entries.size() > maximumSize) {
+                    writeOrder.poll();
+                    if (eldest.accessTime != eldest.queuedAccessTime) {
+                        eldest.queuedAccessTime = eldest.accessTime;
+                        writeOrder.offer(eldest);
+                    } else {
+                        entries.remove(eldest.key, eldest);
+                    }
+                } else {
+                    return;
+                }
+            }
+        } finally {
+            cleanUpLock.unlock();
+        }
+    }
+
+    private static final class Entry<K, V> {
+        private final K key;
+        private final V value;
+        private final long writeTime;
+        private volatile long accessTime;
+        // Access time when last queued, only read and written under the clean up lock
+        private long queuedAccessTime;
+
+        private Entry(K key, V value, long writeTime) {
+            this.key = key;
+            this.value = value;
+            this.writeTime = writeTime;
+            this.accessTime = writeTime;
+            this.queuedAccessTime = writeTime;
+        }
+    }
+}
@@ -24,18 +24,22 @@ import java.util.List;
  */
 public class EndpointConfiguration {
 
+    static final int DEFAULT_MAX_CONNECTIONS = 20;
+
     private final String endpoint, username, password;
     private final int cacheMaxElement;
     private final long cacheTtl;
     private final List<String> headers;
+    private final int maxConnections;
 
-    private EndpointConfiguration(String endpoint, String username, String password, int cacheMaxElement, long cacheTtl, List<String> headers) {
+    private EndpointConfiguration(String endpoint, String username, String password, int cacheMaxElement, long cacheTtl, List<String> headers, int maxConnections) {
         this.endpoint = endpoint;
         this.username = username;
         this.password = password;
         this.cacheMaxElement = cacheMaxElement;
         this.cacheTtl = cacheTtl;
         this.headers = headers != null ? Collections.unmodifiableList(headers) : Collections.emptyList();
+        this.maxConnections = maxConnections;
     }
 
     public String getEndpoint() {
@@ -62,11 +66,16 @@ public class EndpointConfiguration {
         return headers;
     }
 
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
     public static class Builder {
         private String endpoint, username, password;
         private int cacheMaxElement;
         private long cacheTtl;
         private List<String> headers;
+        private int maxConnections = DEFAULT_MAX_CONNECTIONS;
 
         public Builder(String endpoint) {
             this.endpoint = endpoint;
@@ -97,8 +106,13 @@ public class EndpointConfiguration {
             return this;
         }
 
+        public EndpointConfiguration.Builder maxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
         public EndpointConfiguration build() {
-            return new EndpointConfiguration(endpoint, username, password, cacheMaxElement, cacheTtl, headers);
+            return new EndpointConfiguration(endpoint, username, password, cacheMaxElement, cacheTtl, headers, maxConnections);
         }
     }
 }
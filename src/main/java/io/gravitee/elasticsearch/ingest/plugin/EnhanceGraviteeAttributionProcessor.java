@@ -20,7 +20,9 @@ import org.elasticsearch.ingest.IngestDocument;
 import org.elasticsearch.ingest.Processor;
 
 import java.util.*;
+import java.util.concurrent.Executor;
 
+import static org.elasticsearch.ingest.ConfigurationUtils.readBooleanProperty;
 import static org.elasticsearch.ingest.ConfigurationUtils.readStringProperty;
 
 /**
@@ -35,15 +37,33 @@ import static org.elasticsearch.ingest.ConfigurationUtils.readStringProperty;
 public class EnhanceGraviteeAttributionProcessor extends AbstractProcessor {
 
     public static final String TYPE = "gravitee-elasticsearch-ingest-plugin";
+    public static final String PROFILE_METADATA_FIELD = "_ingest.gravitee_profile";
 
     private final Collection<IngestDocumentEnhancer> documentEnhancers;
+    private final boolean profile;
 
     EnhanceGraviteeAttributionProcessor(String tag, Collection<IngestDocumentEnhancer> documentEnhancers) {
+        this(tag, documentEnhancers, false);
+    }
+
+    /**
+     * Initializes a processor.
+     * @param tag the processor tag.
+     * @param documentEnhancers the enhancers to apply on each document.
+     * @param profile indicates whether the resolution source and time of each enhanced field must be added to the
+     *                document Ingest metadata, under {@link #PROFILE_METADATA_FIELD}.
+     */
+    EnhanceGraviteeAttributionProcessor(String tag, Collection<IngestDocumentEnhancer> documentEnhancers, boolean profile) {
         super(tag);
         if (documentEnhancers == null || documentEnhancers.isEmpty()) {
             throw new IllegalStateException("Cannot initialize processor without document enhancer");
         }
         this.documentEnhancers = Collections.unmodifiableCollection(documentEnhancers);
+        this.profile = profile;
+    }
+
+    Collection<IngestDocumentEnhancer> getDocumentEnhancers() {
+        return documentEnhancers;
     }
 
     @Override
@@ -53,24 +73,56 @@ public class EnhanceGraviteeAttributionProcessor extends AbstractProcessor {
 
     @Override
     public IngestDocument execute(IngestDocument ingestDocument) {
+        if (profile) {
+            return executeWithProfile(ingestDocument);
+        }
         this.documentEnhancers.forEach(documentEnhancer -> documentEnhancer.enhanceDocument(ingestDocument));
         return ingestDocument;
     }
 
+    private IngestDocument executeWithProfile(IngestDocument ingestDocument) {
+        final EnhancementProfile enhancementProfile = new EnhancementProfile();
+        int index = 0;
+        for (IngestDocumentEnhancer documentEnhancer : documentEnhancers) {
+            final int recorded = enhancementProfile.size();
+            final long start = System.nanoTime();
+            documentEnhancer.enhanceDocument(ingestDocument, enhancementProfile);
+            if (enhancementProfile.size() == recorded) {
+                // Enhancers of the same class may be used several times, identify them by their position
+                enhancementProfile.record(documentEnhancer.getClass().getSimpleName() + "[" + index + "]",
+                        EnhancementProfile.Source.UNKNOWN, System.nanoTime() - start);
+            }
+            index++;
+        }
+        ingestDocument.setFieldValue(PROFILE_METADATA_FIELD, enhancementProfile.toMap());
+        return ingestDocument;
+    }
+
     /**
      * A {@link EnhanceGraviteeAttributionProcessor} factory. By default, it initializes 2 {@link IngestDocumentEnhancer}s
      * to add API and application names in document.
      *
      * This factory is extensible to initialize more {@link IngestDocumentEnhancer}s than those defined by default, or
      * to completely replace the default ones, using {@link #initializeDocumentEnhancers(String, Map)}.
+     *
+     * When the {@code combinedLookup} property is enabled, both default enhancers are wrapped in a single
+     * {@link ResourceNamePairIngestDocumentEnhancer} caching the API and application names together.
+     *
+     * A factory is created once per node, and shares its {@link ManagementApiClient} between all the processors it
+     * creates. The client is only built on first use, so that creating a processor is cheap. Concurrent lookups run on
+     * the lookup executor given by the plugin, which relies on the node thread pool.
      */
     public static class Factory implements Processor.Factory {
 
         protected static final String PIPELINE_API_FIELD = "apiField";
         protected static final String PIPELINE_APPLICATION_FIELD = "applicationField";
+        protected static final String PIPELINE_COMBINED_LOOKUP = "combinedLookup";
+        protected static final String PIPELINE_PROFILE = "profile";
 
         private final EndpointConfiguration endpointConfiguration;
         private final boolean reAddPropertyToConfigAfterInit;
+        private final ManagementApiClient managementApiClient;
+        private final Executor lookupExecutor;
 
         protected Factory(EndpointConfiguration endpointConfiguration) {
             this(endpointConfiguration, false);
@@ -85,13 +137,31 @@ public class EnhanceGraviteeAttributionProcessor extends AbstractProcessor {
          *                                       initialization.
          */
         protected Factory(EndpointConfiguration endpointConfiguration, boolean reAddPropertyToConfigAfterInit) {
+            this(endpointConfiguration, reAddPropertyToConfigAfterInit, Runnable::run);
+        }
+
+        /**
+         * Initializes a factory.
+         * @param endpointConfiguration the Management API endpoint configuration.
+         * @param reAddPropertyToConfigAfterInit see {@link #Factory(EndpointConfiguration, boolean)}.
+         * @param lookupExecutor the executor used by enhancers to run remote resolutions concurrently. When running
+         *                       tasks on the calling thread, as by default, resolutions are sequential.
+         */
+        protected Factory(EndpointConfiguration endpointConfiguration, boolean reAddPropertyToConfigAfterInit, Executor lookupExecutor) {
             this.endpointConfiguration = endpointConfiguration;
             this.reAddPropertyToConfigAfterInit = reAddPropertyToConfigAfterInit;
+            this.managementApiClient = new ManagementApiClient(endpointConfiguration);
+            this.lookupExecutor = lookupExecutor;
         }
 
         @Override
         public final EnhanceGraviteeAttributionProcessor create(Map<String, Processor.Factory> factories, String tag, Map<String, Object> config) throws Exception {
-            return new EnhanceGraviteeAttributionProcessor(tag, initializeDocumentEnhancers(tag, config));
+            final boolean profileConfigured = config.containsKey(PIPELINE_PROFILE);
+            final boolean profile = readBooleanProperty(TYPE, tag, config, PIPELINE_PROFILE, false);
+            if (reAddPropertyToConfigAfterInit && profileConfigured) {
+                config.put(PIPELINE_PROFILE, profile);
+            }
+            return new EnhanceGraviteeAttributionProcessor(tag, initializeDocumentEnhancers(tag, config), profile);
         }
 
         /**
@@ -107,18 +177,48 @@ public class EnhanceGraviteeAttributionProcessor extends AbstractProcessor {
             List<IngestDocumentEnhancer> enhancers = new ArrayList<>();
 
             final String apiField = readStringProperty(TYPE, tag, config, PIPELINE_API_FIELD);
-            enhancers.add(new ResourceNameIngestDocumentEnhancer(endpointConfiguration, apiField, "api-name", "/apis", "name"));
+            final ResourceNameIngestDocumentEnhancer apiEnhancer =
+                    new ResourceNameIngestDocumentEnhancer(endpointConfiguration, getManagementApiClient(), apiField, "api-name", "/apis", "name");
             if (reAddPropertyToConfigAfterInit) {
                 config.put(PIPELINE_API_FIELD, apiField);
             }
 
             final String applicationField = readStringProperty(TYPE, tag, config, PIPELINE_APPLICATION_FIELD);
-            enhancers.add(new ResourceNameIngestDocumentEnhancer(endpointConfiguration, applicationField, "application-name", "/applications", "name"));
+            final ResourceNameIngestDocumentEnhancer applicationEnhancer =
+                    new ResourceNameIngestDocumentEnhancer(endpointConfiguration, getManagementApiClient(), applicationField, "application-name", "/applications", "name");
             if (reAddPropertyToConfigAfterInit) {
                 config.put(PIPELINE_APPLICATION_FIELD, applicationField);
             }
+
+            final boolean combinedLookupConfigured = config.containsKey(PIPELINE_COMBINED_LOOKUP);
+            final boolean combinedLookup = readBooleanProperty(TYPE, tag, config, PIPELINE_COMBINED_LOOKUP, false);
+            if (combinedLookup) {
+                enhancers.add(new ResourceNamePairIngestDocumentEnhancer(endpointConfiguration, apiEnhancer, applicationEnhancer, getLookupExecutor()));
+            } else {
+                enhancers.add(apiEnhancer);
+                enhancers.add(applicationEnhancer);
+            }
+            if (reAddPropertyToConfigAfterInit && combinedLookupConfigured) {
+                config.put(PIPELINE_COMBINED_LOOKUP, combinedLookup);
+            }
             return enhancers;
         }
+
+        /**
+         * Returns the {@link ManagementApiClient} shared by all the processors created by this factory.
+         * @return the Management API client.
+         */
+        protected ManagementApiClient getManagementApiClient() {
+            return managementApiClient;
+        }
+
+        /**
+         * Returns the {@link Executor} used by enhancers to run remote resolutions concurrently.
+         * @return the executor shared by all the processors created by this factory.
+         */
+        protected Executor getLookupExecutor() {
+            return lookupExecutor;
+        }
     }
 
 }
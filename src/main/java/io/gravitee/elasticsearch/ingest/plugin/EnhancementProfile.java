@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.elasticsearch.ingest.plugin;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Collects, for a single {@link EnhanceGraviteeAttributionProcessor} execution, how each enhanced field value has been
+ * resolved and how long it took. This is only used when the processor {@code profile} property is enabled, and is
+ * exposed in the document Ingest metadata so that it shows up in {@code _ingest/pipeline/_simulate} results.
+ *
+ * This class is thread-safe, as some enhancers may resolve values concurrently.
+ *
+ * @see IngestDocumentEnhancer#enhanceDocument(org.elasticsearch.ingest.IngestDocument, EnhancementProfile)
+ */
+public class EnhancementProfile {
+
+    /**
+     * How an enhanced field value has been resolved.
+     */
+    public enum Source {
+        /** Value served from cache. */
+        CACHE_HIT,
+        /** A previous resolution failure served from cache. */
+        NEGATIVE_CACHE,
+        /** Value retrieved from the Management API. */
+        REMOTE,
+        /** Expired value confirmed as unchanged by the Management API through a conditional request. */
+        REVALIDATED,
+        /** Expired value kept because its refresh failed. */
+        STALE,
+        /** Default value, because there was nothing to resolve or the resolution failed. */
+        DEFAULT,
+        /** Unknown, the enhancer does not report how its values are resolved. */
+        UNKNOWN;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final Map<String, Map<String, Object>> entries = new LinkedHashMap<>();
+
+    /**
+     * Records how an enhanced field value has been resolved.
+     * @param enhancedFieldName the name of the enhanced field.
+     * @param source how the value has been resolved.
+     * @param tookNanos the resolution time, in nanoseconds.
+     */
+    public synchronized void record(String enhancedFieldName, Source source, long tookNanos) {
+        final Map<String, Object> entry = new HashMap<>();
+        entry.put("source", source.toString());
+        entry.put("took_nanos", tookNanos);
+        entries.put(enhancedFieldName, entry);
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized Map<String, Object> toMap() {
+        return new LinkedHashMap<>(entries);
+    }
+}
@@ -33,4 +33,16 @@ public interface IngestDocumentEnhancer {
      */
     void enhanceDocument(final IngestDocument ingestDocument);
 
+    /**
+     * Enhances the specified document with new information, and records in the given profile how the enhanced values
+     * have been resolved. By default, this delegates to {@link #enhanceDocument(IngestDocument)} without recording
+     * anything, letting the processor time the whole enhancement.
+     *
+     * @param ingestDocument the document to enhance.
+     * @param profile the profile of the current processor execution.
+     */
+    default void enhanceDocument(final IngestDocument ingestDocument, final EnhancementProfile profile) {
+        enhanceDocument(ingestDocument);
+    }
+
 }
@@ -21,6 +21,7 @@ import org.elasticsearch.plugins.IngestPlugin;
 import org.elasticsearch.plugins.Plugin;
 
 import java.util.*;
+import java.util.concurrent.Executor;
 
 import static io.gravitee.elasticsearch.ingest.plugin.EnhanceGraviteeAttributionProcessor.TYPE;
 import static java.util.Collections.emptyList;
@@ -34,7 +35,7 @@ import static org.elasticsearch.common.settings.Setting.Property.NodeScope;
  * potentially through a Gravitee gateway.
  *
  * This class is extensible to change the {@link Processor} implementation through the
- * {@link #buildProcessorFactory(EndpointConfiguration)} method. By default, a {@link EnhanceGraviteeAttributionProcessor}
+ * {@link #buildProcessorFactory(EndpointConfiguration, Executor)} method. By default, a {@link EnhanceGraviteeAttributionProcessor}
  * instance is used.
  *
  * @author Azize ELAMRANI (azize.elamrani at graviteesource.com)
@@ -55,6 +56,8 @@ public class IngestGraviteePlugin extends Plugin implements IngestPlugin {
     private static final Setting<Long> CACHE_TTL =
             longSetting("ingest.gravitee.cache.ttl", 3600, 0, NodeScope);
     private static final Setting<List<String>> HEADERS_KEY = listSetting("ingest.gravitee.headers", emptyList(), s -> s, NodeScope);
+    private static final Setting<Integer> HTTP_MAX_CONNECTIONS =
+            intSetting("ingest.gravitee.http.maxConnections", EndpointConfiguration.DEFAULT_MAX_CONNECTIONS, 1, NodeScope);
 
     @Override
     public List<Setting<?>> getSettings() {
@@ -65,6 +68,7 @@ public class IngestGraviteePlugin extends Plugin implements IngestPlugin {
         settings.add(CACHE_MAX_ELEMENT);
         settings.add(CACHE_TTL);
         settings.add(HEADERS_KEY);
+        settings.add(HTTP_MAX_CONNECTIONS);
         return settings;
     }
 
@@ -77,18 +81,22 @@ public class IngestGraviteePlugin extends Plugin implements IngestPlugin {
                         .cacheMaxElement(CACHE_MAX_ELEMENT.get(parameters.env.settings()))
                         .cacheTtl(CACHE_TTL.get(parameters.env.settings()))
                         .headers(HEADERS_KEY.get(parameters.env.settings()))
+                        .maxConnections(HTTP_MAX_CONNECTIONS.get(parameters.env.settings()))
                         .build();
-        return singletonMap(TYPE, buildProcessorFactory(endpointConfiguration));
+        // Runs lookups on the node generic thread pool, which is managed and shut down by Elasticsearch
+        final Executor lookupExecutor = command -> parameters.scheduler.apply(0L, command);
+        return singletonMap(TYPE, buildProcessorFactory(endpointConfiguration, lookupExecutor));
     }
 
     /**
      * Builds the {@link Processor.Factory} instance that will be used by {@link #getProcessors(Processor.Parameters)}
      * to initialize the processor used by this Ingest plugin.
      * @param endpointConfiguration the Management API endpoint configuration.
+     * @param lookupExecutor the executor to run concurrent remote lookups on.
      * @return the factory to be used to initialize Ingest processor.
      */
-    protected Processor.Factory buildProcessorFactory(EndpointConfiguration endpointConfiguration) {
-        return new EnhanceGraviteeAttributionProcessor.Factory(endpointConfiguration);
+    protected Processor.Factory buildProcessorFactory(EndpointConfiguration endpointConfiguration, Executor lookupExecutor) {
+        return new EnhanceGraviteeAttributionProcessor.Factory(endpointConfiguration, false, lookupExecutor);
     }
 
 }
@@ -28,17 +28,24 @@ import org.elasticsearch.common.logging.Loggers;
 
 import java.io.IOException;
 import java.security.AccessController;
+import java.security.GeneralSecurityException;
 import java.security.PrivilegedAction;
 
 import static io.gravitee.elasticsearch.ingest.plugin.EnhanceGraviteeAttributionProcessor.TYPE;
 import static java.lang.String.format;
 import static java.util.Base64.getEncoder;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
  * An HTTP client responsible for accessing to the Gravitee Management API to retrieve some information from resources.
  * This client can be used by {@link IngestDocumentEnhancer}s. It manages Management API authentication as specified
- * during construction through {@link EndpointConfiguration}. This implementation is thread-safe, thus initialize only
- * one instance per enhancer.
+ * during construction through {@link EndpointConfiguration}. This implementation is thread-safe, thus a single instance
+ * can be shared by all the enhancers of a node. Connections are kept alive and pooled, so that concurrent lookups reuse
+ * the same connections to the Management API instead of opening a new one, and a new TLS session, for each request.
+ *
+ * The underlying HTTP client, and its SSL context, are only built on first request, so that creating this client is
+ * cheap. If that build fails, requests return their default value, and the build is only retried, and its failure
+ * logged again, once {@link #HTTP_CLIENT_BUILD_RETRY_SECONDS} have elapsed.
  *
  * @see EndpointConfiguration
  */
@@ -48,13 +55,15 @@ public class ManagementApiClient {
 
     private static final String MANAGEMENT_API_ACCEPT_MEDIA_TYPE = "application/json";
     private static final String CUSTOM_HEADER_SEPARATOR = ":";
+    static final long HTTP_CLIENT_BUILD_RETRY_SECONDS = 30;
 
     private final EndpointConfiguration endpointConfiguration;
-    private final CloseableHttpClient httpClient;
+    private volatile CloseableHttpClient httpClient;
+    private volatile boolean httpClientBuildFailed;
+    private volatile long httpClientBuildFailureNanos;
 
-    public ManagementApiClient(final EndpointConfiguration endpointConfiguration) throws Exception {
+    public ManagementApiClient(final EndpointConfiguration endpointConfiguration) {
         this.endpointConfiguration = endpointConfiguration;
-        this.httpClient = buildHttpClient();
     }
 
     public <T> T requestForValue(final String resourceBasePath, final String resourceId, final ResponseHandler<? extends T> responseHandler, final T defaultValue) {
@@ -62,6 +71,27 @@ public class ManagementApiClient {
         return requestForEnhancedFieldValue(apiRequest, responseHandler, defaultValue);
     }
 
+    /**
+     * Sends a conditional request for the resource, so that the Management API can answer with a
+     * {@code 304 Not Modified} response without body if the resource has not changed. The response handler is then
+     * responsible for handling that status.
+     *
+     * @param eTag the {@code ETag} of the previous response, sent as {@code If-None-Match}, may be {@code null}.
+     * @param lastModified the {@code Last-Modified} of the previous response, sent as {@code If-Modified-Since}, may
+     *                     be {@code null}.
+     */
+    public <T> T requestForValue(final String resourceBasePath, final String resourceId, final String eTag, final String lastModified,
+                                 final ResponseHandler<? extends T> responseHandler, final T defaultValue) {
+        HttpGet apiRequest = prepareApiRequest(resourceBasePath, resourceId);
+        if (eTag != null) {
+            apiRequest.setHeader(HttpHeaders.IF_NONE_MATCH, eTag);
+        }
+        if (lastModified != null) {
+            apiRequest.setHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+        }
+        return requestForEnhancedFieldValue(apiRequest, responseHandler, defaultValue);
+    }
+
     private HttpGet prepareApiRequest(final String resourceBasePath, final String resourceId) {
         final HttpGet apiRequest = new HttpGet(format("%s%s/%s", endpointConfiguration.getEndpoint(), resourceBasePath, resourceId));
         apiRequest.setHeader(HttpHeaders.AUTHORIZATION, getAuthorizationHeaderValue());
@@ -81,8 +111,12 @@ public class ManagementApiClient {
 
     private <T> T requestForEnhancedFieldValue(final HttpGet apiRequest, final ResponseHandler<? extends T> responseHandler, final T defaultValue) {
         return AccessController.doPrivileged((PrivilegedAction<T>) () -> {
+            final CloseableHttpClient client = getHttpClient();
+            if (client == null) {
+                return defaultValue;
+            }
             try {
-                return httpClient.execute(apiRequest, responseHandler);
+                return client.execute(apiRequest, responseHandler);
             } catch (IOException e) {
                 LOGGER.error("Error while trying to enhance gravitee attribute", e);
                 return defaultValue;
@@ -90,11 +124,52 @@ public class ManagementApiClient {
         });
     }
 
-    private CloseableHttpClient buildHttpClient() throws Exception {
+    /**
+     * Returns {@code true} once the underlying HTTP client has been built, that is once a first request has been sent.
+     */
+    boolean isInitialized() {
+        return httpClient != null;
+    }
+
+    /**
+     * Returns the underlying HTTP client, building it on first call, or {@code null} if it could not be built.
+     */
+    private CloseableHttpClient getHttpClient() {
+        CloseableHttpClient client = httpClient;
+        if (client == null && canBuildHttpClient()) {
+            synchronized (this) {
+                client = httpClient;
+                if (client == null && canBuildHttpClient()) {
+                    try {
+                        client = buildHttpClient();
+                        httpClient = client;
+                    } catch (Exception e) {
+                        // Not retried on every request, as it would most likely fail the same way
+                        LOGGER.warn("Unable to build the Management API HTTP client, gravitee attributes will not be enhanced for {} seconds",
+                                HTTP_CLIENT_BUILD_RETRY_SECONDS, e);
+                        httpClientBuildFailureNanos = System.nanoTime();
+                        httpClientBuildFailed = true;
+                    }
+                }
+            }
+        }
+        return client;
+    }
+
+    private boolean canBuildHttpClient() {
+        return !httpClientBuildFailed
+                || System.nanoTime() - httpClientBuildFailureNanos >= SECONDS.toNanos(HTTP_CLIENT_BUILD_RETRY_SECONDS);
+    }
+
+    private CloseableHttpClient buildHttpClient() throws GeneralSecurityException {
         final SSLContextBuilder builder = new SSLContextBuilder();
         builder.loadTrustMaterial(null, new TrustSelfSignedStrategy());
         final SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(builder.build());
-        return HttpClients.custom().setSSLSocketFactory(sslsf).build();
+        return HttpClients.custom()
+                .setSSLSocketFactory(sslsf)
+                .setMaxConnPerRoute(endpointConfiguration.getMaxConnections())
+                .setMaxConnTotal(endpointConfiguration.getMaxConnections())
+                .build();
     }
 
 }
\ No newline at end of file
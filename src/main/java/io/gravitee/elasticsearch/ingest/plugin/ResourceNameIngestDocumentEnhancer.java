@@ -16,19 +16,22 @@
 package io.gravitee.elasticsearch.ingest.plugin;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.Logger;
-import org.elasticsearch.common.cache.Cache;
-import org.elasticsearch.common.cache.CacheBuilder;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.ingest.IngestDocument;
 
+import java.io.IOException;
 import java.util.Map;
-import java.util.Optional;
+import java.util.function.LongSupplier;
 
 import static io.gravitee.elasticsearch.ingest.plugin.EnhanceGraviteeAttributionProcessor.TYPE;
-import static org.elasticsearch.common.unit.TimeValue.timeValueSeconds;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
  * An {@link IngestDocumentEnhancer} implementation that retrieves enhanced field value from the Gravitee Management API.
@@ -36,6 +39,11 @@ import static org.elasticsearch.common.unit.TimeValue.timeValueSeconds;
  * The original field value must be the ID of a Gravitee resource, reachable via the Gravitee Management API, in the form
  * of an URL built as <graviteeBaseUrl>/<resourcePath>/<resourceId>, where the <resourceId> part is the original field value.
  *
+ * Once a cached value has expired, it is revalidated with a conditional request based on the {@code ETag} and
+ * {@code Last-Modified} headers of the previous response, if any. A {@code 304 Not Modified} response then simply
+ * extends the cached value lifetime. If the Management API is unreachable or answers with a server error when
+ * refreshing an expired value, that value is kept, along with its validators if any, for another TTL.
+ *
  * @see IngestDocumentEnhancer
  * @see ManagementApiClient
  */
@@ -44,90 +52,217 @@ class ResourceNameIngestDocumentEnhancer implements IngestDocumentEnhancer {
     private static final Logger LOGGER = Loggers.getLogger(EnhanceGraviteeAttributionProcessor.class, TYPE);
 
     private static final String UNKNOWN_ID = "1";
-    private static final String UNKNOWN_NAME = "Unknown";
-    private static final String DEFAULT_VALUE = "";
+    static final String DEFAULT_VALUE = "";
+
+    private static final ResourceName UNKNOWN_RESOURCE_NAME = new ResourceName("Unknown", null, null, EnhancementProfile.Source.DEFAULT);
+    private static final ResourceName DEFAULT_RESOURCE_NAME = new ResourceName(DEFAULT_VALUE, null, null, EnhancementProfile.Source.DEFAULT);
 
     private final String fieldName;
     private final String enhancedFieldName;
+    // Top level fields are accessed directly, without parsing a field path on each document
+    private final boolean topLevelFieldName;
+    private final boolean topLevelEnhancedFieldName;
     private final String resourceBasePath;
     private final String resourceNameAttribute;
 
-    private final ObjectMapper mapper;
-    private final ResponseHandler<String> responseHandler;
-    private final Cache<String, String> cache;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final ResponseHandler<ResourceName> responseHandler;
+    private final ConcurrentLruCache<String, ResourceName> cache;
     private final ManagementApiClient managementApiClient;
 
     ResourceNameIngestDocumentEnhancer(
             EndpointConfiguration endpointConfiguration,
+            ManagementApiClient managementApiClient,
             String fieldName,
             String enhancedFieldName,
             String resourceBasePath,
-            String resourceNameAttribute) throws Exception {
+            String resourceNameAttribute) {
+        this(endpointConfiguration, managementApiClient, fieldName, enhancedFieldName, resourceBasePath,
+                resourceNameAttribute, System::nanoTime);
+    }
+
+    /**
+     * Initializes an enhancer whose cache expiry is based on the given clock, so that tests can control it.
+     */
+    ResourceNameIngestDocumentEnhancer(
+            EndpointConfiguration endpointConfiguration,
+            ManagementApiClient managementApiClient,
+            String fieldName,
+            String enhancedFieldName,
+            String resourceBasePath,
+            String resourceNameAttribute,
+            LongSupplier nanoTime) {
         this.fieldName = fieldName;
         this.enhancedFieldName = enhancedFieldName;
+        this.topLevelFieldName = fieldName.indexOf('.') < 0;
+        this.topLevelEnhancedFieldName = enhancedFieldName.indexOf('.') < 0;
         this.resourceBasePath = resourceBasePath;
         this.resourceNameAttribute = resourceNameAttribute;
 
-        this.mapper = new ObjectMapper();
-        this.responseHandler = buildResponseHandler();
-        this.cache = initCache(endpointConfiguration);
-        this.managementApiClient = new ManagementApiClient(endpointConfiguration);
+        this.responseHandler = response -> handleResponse(response, null);
+        this.cache = initCache(endpointConfiguration, nanoTime);
+        this.managementApiClient = managementApiClient;
     }
 
     @Override
     public void enhanceDocument(IngestDocument ingestDocument) {
-        final String fieldValue = ingestDocument.getFieldValue(fieldName, String.class, true);
-        final String enhancedFieldValue = fieldValue != null ? getCachedEnhancedFieldValue(fieldValue) : DEFAULT_VALUE;
-        ingestDocument.setFieldValue(enhancedFieldName, enhancedFieldValue);
+        enhanceDocument(ingestDocument, null);
+    }
+
+    @Override
+    public void enhanceDocument(IngestDocument ingestDocument, EnhancementProfile profile) {
+        writeEnhancedFieldValue(ingestDocument, resolveEnhancedFieldValue(readFieldValue(ingestDocument), profile));
+    }
+
+    String readFieldValue(IngestDocument ingestDocument) {
+        if (topLevelFieldName) {
+            final Object fieldValue = ingestDocument.getSourceAndMetadata().get(fieldName);
+            if (fieldValue == null || fieldValue instanceof String) {
+                return (String) fieldValue;
+            }
+            // Let the Ingest document report the type mismatch
+        }
+        return ingestDocument.getFieldValue(fieldName, String.class, true);
+    }
+
+    void writeEnhancedFieldValue(IngestDocument ingestDocument, String enhancedFieldValue) {
+        if (topLevelEnhancedFieldName) {
+            ingestDocument.getSourceAndMetadata().put(enhancedFieldName, enhancedFieldValue);
+        } else {
+            ingestDocument.setFieldValue(enhancedFieldName, enhancedFieldValue);
+        }
+    }
+
+    /**
+     * Resolves the enhanced field value matching the original field value.
+     * @param fieldValue the original field value, may be {@code null}.
+     * @param profile the profile to record the resolution to, or {@code null} if profiling is disabled.
+     * @return the enhanced field value.
+     */
+    String resolveEnhancedFieldValue(final String fieldValue, final EnhancementProfile profile) {
+        final long start = profile != null ? System.nanoTime() : 0L;
+        ResourceName resourceName = fieldValue != null ? cache.get(fieldValue) : DEFAULT_RESOURCE_NAME;
+        final boolean cached = fieldValue != null && resourceName != null;
+        if (resourceName == null) {
+            resourceName = initCachedEnhancedFieldValue(fieldValue);
+        }
+        if (profile != null) {
+            profile.record(enhancedFieldName, cached ? resourceName.getCachedSource() : resourceName.source,
+                    System.nanoTime() - start);
+        }
+        return resourceName.name;
     }
 
-    private String getCachedEnhancedFieldValue(final String fieldValue) {
-        return Optional.ofNullable(cache.get(fieldValue)).orElseGet(() -> initCachedEnhancedFieldValue(fieldValue));
+    /**
+     * Indicates whether resolving the enhanced field value matching the original field value needs a call to the
+     * Management API, i.e. whether it is not already available.
+     * @param fieldValue the original field value, may be {@code null}.
+     * @return {@code true} if a remote call is needed.
+     */
+    boolean requiresRemoteCall(final String fieldValue) {
+        return fieldValue != null && !UNKNOWN_ID.equals(fieldValue) && cache.get(fieldValue) == null;
     }
 
-    private String initCachedEnhancedFieldValue(final String fieldValue) {
-        final String name = getEnhancedFieldValue(fieldValue);
-        if ("".equals(name)) {
+    String getEnhancedFieldName() {
+        return enhancedFieldName;
+    }
+
+    private ResourceName initCachedEnhancedFieldValue(final String fieldValue) {
+        final ResourceName resourceName = getEnhancedFieldValue(fieldValue, cache.getStale(fieldValue));
+        if ("".equals(resourceName.name)) {
             // Do not erase the value if the new value is empty
             // Empty value means that the enhancement failed
-            if (cache.get(fieldValue) == null) {
-                cache.put(fieldValue, name);
-            }
+            cache.putIfAbsent(fieldValue, resourceName);
         } else {
-            cache.put(fieldValue, name);
+            cache.put(fieldValue, resourceName);
         }
-        return name;
+        return resourceName;
     }
 
-    private String getEnhancedFieldValue(final String fieldValue) {
+    private ResourceName getEnhancedFieldValue(final String fieldValue, final ResourceName staleResourceName) {
         if (UNKNOWN_ID.equals(fieldValue)) {
-            return UNKNOWN_NAME;
+            return UNKNOWN_RESOURCE_NAME;
         }
-        LOGGER.info("Enhancing field '{}' for id '{}'...", enhancedFieldName, fieldValue);
-        return managementApiClient.requestForValue(resourceBasePath, fieldValue, responseHandler, DEFAULT_VALUE);
+        // A previously failed enhancement is not worth keeping
+        if (staleResourceName == null || "".equals(staleResourceName.name)) {
+            LOGGER.info("Enhancing field '{}' for id '{}'...", enhancedFieldName, fieldValue);
+            return managementApiClient.requestForValue(resourceBasePath, fieldValue, responseHandler, DEFAULT_RESOURCE_NAME);
+        }
+        if (staleResourceName.isRevalidable()) {
+            LOGGER.info("Revalidating field '{}' for id '{}'...", enhancedFieldName, fieldValue);
+            return managementApiClient.requestForValue(resourceBasePath, fieldValue,
+                    staleResourceName.eTag, staleResourceName.lastModified,
+                    response -> handleResponse(response, staleResourceName), staleResourceName.withSource(EnhancementProfile.Source.STALE));
+        }
+        LOGGER.info("Refreshing field '{}' for id '{}'...", enhancedFieldName, fieldValue);
+        return managementApiClient.requestForValue(resourceBasePath, fieldValue,
+                response -> handleResponse(response, staleResourceName), staleResourceName.withSource(EnhancementProfile.Source.STALE));
     }
 
-    private Cache<String, String> initCache(EndpointConfiguration endpointConfiguration) {
-        final CacheBuilder<String, String> cacheBuilder = CacheBuilder.builder();
-        if (endpointConfiguration.getCacheTtl() > 0) {
-            cacheBuilder.setExpireAfterWrite(timeValueSeconds(endpointConfiguration.getCacheTtl()));
+    private ConcurrentLruCache<String, ResourceName> initCache(EndpointConfiguration endpointConfiguration, LongSupplier nanoTime) {
+        // Expired names are kept for one more TTL to be revalidated
+        final long ttlNanos = SECONDS.toNanos(endpointConfiguration.getCacheTtl());
+        return new ConcurrentLruCache<>(endpointConfiguration.getCacheMaxElement(), ttlNanos, ttlNanos, nanoTime);
+    }
+
+    private ResourceName handleResponse(final HttpResponse response, final ResourceName staleResourceName) throws IOException {
+        int status = response.getStatusLine().getStatusCode();
+        if (status == HttpStatus.SC_OK) {
+            final String name = (String) MAPPER.readValue(EntityUtils.toString(response.getEntity()), Map.class).get(resourceNameAttribute);
+            return new ResourceName(name, headerValue(response, HttpHeaders.ETAG), headerValue(response, HttpHeaders.LAST_MODIFIED),
+                    EnhancementProfile.Source.REMOTE);
+        }
+        if (status == HttpStatus.SC_NOT_MODIFIED && staleResourceName != null) {
+            final String eTag = headerValue(response, HttpHeaders.ETAG);
+            final String lastModified = headerValue(response, HttpHeaders.LAST_MODIFIED);
+            return new ResourceName(staleResourceName.name,
+                    eTag != null ? eTag : staleResourceName.eTag,
+                    lastModified != null ? lastModified : staleResourceName.lastModified,
+                    EnhancementProfile.Source.REVALIDATED);
         }
-        if (endpointConfiguration.getCacheMaxElement() > 0) {
-            cacheBuilder.setMaximumWeight(endpointConfiguration.getCacheMaxElement());
+        LOGGER.error("Error while trying to enhance gravitee '{}' attribute: Status[{}] - {}",
+                enhancedFieldName, status, response.getEntity() != null ? EntityUtils.toString(response.getEntity()) : "");
+        if (status >= HttpStatus.SC_INTERNAL_SERVER_ERROR && staleResourceName != null) {
+            // Keep serving the previous name while the Management API is failing
+            return staleResourceName.withSource(EnhancementProfile.Source.STALE);
         }
-        return cacheBuilder.build();
+        return DEFAULT_RESOURCE_NAME;
     }
 
-    private ResponseHandler<String> buildResponseHandler() {
-        return response -> {
-            int status = response.getStatusLine().getStatusCode();
-            if (status == 200) {
-                return (String) mapper.readValue(EntityUtils.toString(response.getEntity()), Map.class).get(resourceNameAttribute);
-            }
-            LOGGER.error("Error while trying to enhance gravitee '{}' attribute: Status[{}] - {}",
-                    enhancedFieldName, status, EntityUtils.toString(response.getEntity()));
-            return DEFAULT_VALUE;
-        };
+    private static String headerValue(final HttpResponse response, final String headerName) {
+        final Header header = response.getFirstHeader(headerName);
+        return header != null ? header.getValue() : null;
+    }
+
+    /**
+     * A resolved resource name, along with the validators needed to revalidate it once expired, and how it has been
+     * resolved.
+     */
+    private static final class ResourceName {
+        private final String name;
+        private final String eTag;
+        private final String lastModified;
+        private final EnhancementProfile.Source source;
+
+        private ResourceName(String name, String eTag, String lastModified, EnhancementProfile.Source source) {
+            this.name = name;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.source = source;
+        }
+
+        private ResourceName withSource(EnhancementProfile.Source source) {
+            return new ResourceName(name, eTag, lastModified, source);
+        }
+
+        private EnhancementProfile.Source getCachedSource() {
+            return "".equals(name) ? EnhancementProfile.Source.NEGATIVE_CACHE : EnhancementProfile.Source.CACHE_HIT;
+        }
+
+        private boolean isRevalidable() {
+            return eTag != null || lastModified != null;
+        }
     }
 
 }
@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.elasticsearch.ingest.plugin;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.ingest.IngestDocument;
+
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import static io.gravitee.elasticsearch.ingest.plugin.EnhanceGraviteeAttributionProcessor.TYPE;
+import static io.gravitee.elasticsearch.ingest.plugin.ResourceNameIngestDocumentEnhancer.DEFAULT_VALUE;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * An {@link IngestDocumentEnhancer} implementation that combines two {@link ResourceNameIngestDocumentEnhancer}s, such
+ * as the API and application ones, behind a single cache keyed on the pair of original field values.
+ *
+ * A hit costs a single cache probe to get both enhanced field values, with a per-thread probe key so that the lookup
+ * does not allocate. Top level fields are read and written directly in the document map, without parsing a field path
+ * each time. On a miss, the underlying enhancers caches are checked first on the calling thread. Only when both values
+ * need a remote call do the two resolutions run concurrently, the second one on the given {@link Executor}.
+ *
+ * @see IngestDocumentEnhancer
+ * @see ResourceNameIngestDocumentEnhancer
+ */
+class ResourceNamePairIngestDocumentEnhancer implements IngestDocumentEnhancer {
+
+    private static final Logger LOGGER = Loggers.getLogger(EnhanceGraviteeAttributionProcessor.class, TYPE);
+    // Shared by all instances, as a probe key is only used for the duration of a lookup
+    private static final ThreadLocal<Key> PROBE_KEY = ThreadLocal.withInitial(Key::new);
+
+    private final ResourceNameIngestDocumentEnhancer firstEnhancer;
+    private final ResourceNameIngestDocumentEnhancer secondEnhancer;
+    private final Executor executor;
+    private final ConcurrentLruCache<Key, Names> cache;
+
+    ResourceNamePairIngestDocumentEnhancer(
+            EndpointConfiguration endpointConfiguration,
+            ResourceNameIngestDocumentEnhancer firstEnhancer,
+            ResourceNameIngestDocumentEnhancer secondEnhancer,
+            Executor executor) {
+        this.firstEnhancer = firstEnhancer;
+        this.secondEnhancer = secondEnhancer;
+        this.executor = executor;
+        this.cache = new ConcurrentLruCache<>(endpointConfiguration.getCacheMaxElement(),
+                SECONDS.toNanos(endpointConfiguration.getCacheTtl()), 0);
+    }
+
+    @Override
+    public void enhanceDocument(IngestDocument ingestDocument) {
+        enhanceDocument(ingestDocument, null);
+    }
+
+    @Override
+    public void enhanceDocument(IngestDocument ingestDocument, EnhancementProfile profile) {
+        final long start = profile != null ? System.nanoTime() : 0L;
+        final Key key = PROBE_KEY.get().set(firstEnhancer.readFieldValue(ingestDocument), secondEnhancer.readFieldValue(ingestDocument));
+        Names names = cache.get(key);
+        if (names == null) {
+            // Underlying enhancers record their own resolution in profile
+            names = initCachedNames(new Key().set(key.first, key.second), profile);
+        } else if (profile != null) {
+            final long tookNanos = System.nanoTime() - start;
+            profile.record(firstEnhancer.getEnhancedFieldName(), cachedSource(names.first), tookNanos);
+            profile.record(secondEnhancer.getEnhancedFieldName(), cachedSource(names.second), tookNanos);
+        }
+        firstEnhancer.writeEnhancedFieldValue(ingestDocument, names.first);
+        secondEnhancer.writeEnhancedFieldValue(ingestDocument, names.second);
+    }
+
+    private static EnhancementProfile.Source cachedSource(String name) {
+        return "".equals(name) ? EnhancementProfile.Source.NEGATIVE_CACHE : EnhancementProfile.Source.CACHE_HIT;
+    }
+
+    private Names initCachedNames(final Key key, final EnhancementProfile profile) {
+        final Names names = resolveNames(key, profile);
+        if ("".equals(names.first) || "".equals(names.second)) {
+            // Do not erase the value if one of the new values is empty
+            // Empty value means that the enhancement failed
+            cache.putIfAbsent(key, names);
+        } else {
+            cache.put(key, names);
+        }
+        return names;
+    }
+
+    private Names resolveNames(final Key key, final EnhancementProfile profile) {
+        if (!firstEnhancer.requiresRemoteCall(key.first) || !secondEnhancer.requiresRemoteCall(key.second)) {
+            // At most one remote call, not worth a thread handoff
+            return new Names(firstEnhancer.resolveEnhancedFieldValue(key.first, profile),
+                    secondEnhancer.resolveEnhancedFieldValue(key.second, profile));
+        }
+        final FutureTask<String> second = new FutureTask<>(() -> secondEnhancer.resolveEnhancedFieldValue(key.second, profile));
+        try {
+            executor.execute(second);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Unable to resolve '{}' concurrently, falling back to sequential resolution",
+                    secondEnhancer.getEnhancedFieldName(), e);
+        }
+        final String first = firstEnhancer.resolveEnhancedFieldValue(key.first, profile);
+        // No-op if the executor has already started the second resolution, otherwise runs it on this thread, so that
+        // a rejected or delayed task never blocks the document
+        second.run();
+        try {
+            return new Names(first, second.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Names(first, DEFAULT_VALUE);
+        } catch (ExecutionException e) {
+            LOGGER.error("Error while trying to enhance gravitee '{}' attribute", secondEnhancer.getEnhancedFieldName(), e.getCause());
+            return new Names(first, DEFAULT_VALUE);
+        }
+    }
+
+    /**
+     * A pair of original field values. Keys stored in cache are never modified, only the per-thread probe keys are
+     * reused across lookups.
+     */
+    private static final class Key {
+        private String first;
+        private String second;
+        private int hash;
+
+        private Key set(String first, String second) {
+            this.first = first;
+            this.second = second;
+            this.hash = 31 * Objects.hashCode(first) + Objects.hashCode(second);
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return hash == key.hash && Objects.equals(first, key.first) && Objects.equals(second, key.second);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Names {
+        private final String first;
+        private final String second;
+
+        private Names(String first, String second) {
+            this.first = first;
+            this.second = second;
+        }
+    }
+}
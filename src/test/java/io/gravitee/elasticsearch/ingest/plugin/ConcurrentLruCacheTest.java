@@ -0,0 +1,211 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.elasticsearch.ingest.plugin;
+
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * The hit throughput benchmark is only run with {@code -Dtests.benchmark=true}.
+ *
+ * @author GraviteeSource Team
+ */
+public class ConcurrentLruCacheTest extends ESTestCase {
+
+    private static final long TTL = SECONDS.toNanos(10);
+
+    private final AtomicLong clock = new AtomicLong();
+
+    private ConcurrentLruCache<String, String> cache(int maximumSize, long expireAfterWriteNanos, long retainStaleNanos) {
+        return new ConcurrentLruCache<>(maximumSize, expireAfterWriteNanos, retainStaleNanos, clock::get);
+    }
+
+    private void advance(long nanos) {
+        clock.addAndGet(nanos);
+    }
+
+    public void testThatPutValueIsReturned() {
+        final ConcurrentLruCache<String, String> cache = cache(10, TTL, 0);
+        cache.put("a", "1");
+        assertThat(cache.get("a"), is("1"));
+        assertThat(cache.get("b"), nullValue());
+        cache.put("a", "2");
+        assertThat(cache.get("a"), is("2"));
+        assertThat(cache.count(), is(1));
+    }
+
+    public void testThatExpiredValueIsNotReturned() {
+        final ConcurrentLruCache<String, String> cache = cache(10, TTL, 0);
+        cache.put("a", "1");
+        advance(TTL);
+        assertThat(cache.get("a"), is("1"));
+        advance(1);
+        assertThat(cache.get("a"), nullValue());
+    }
+
+    public void testThatZeroTtlNeverExpires() {
+        final ConcurrentLruCache<String, String> cache = cache(10, 0, 0);
+        cache.put("a", "1");
+        advance(Long.MAX_VALUE / 2);
+        assertThat(cache.get("a"), is("1"));
+        assertThat(cache.getStale("a"), is("1"));
+    }
+
+    public void testThatStaleValueIsRetainedForRevalidation() {
+        final ConcurrentLruCache<String, String> cache = cache(10, TTL, TTL);
+        cache.put("a", "1");
+        advance(TTL + 1);
+        assertThat(cache.get("a"), nullValue());
+        assertThat(cache.getStale("a"), is("1"));
+        advance(TTL);
+        assertThat(cache.getStale("a"), nullValue());
+    }
+
+    public void testThatExpiredEntriesArePurgedWithoutSizeBound() {
+        final ConcurrentLruCache<String, String> cache = cache(0, TTL, TTL);
+        for (int i = 0; i < 100; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        assertThat(cache.count(), is(100));
+        advance(2 * TTL + 1);
+        cache.put("other", "value");
+        assertThat(cache.count(), is(1));
+        assertThat(cache.get("other"), is("value"));
+    }
+
+    public void testThatZeroMaximumSizeIsUnbounded() {
+        final ConcurrentLruCache<String, String> cache = cache(0, 0, 0);
+        for (int i = 0; i < 10_000; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        assertThat(cache.count(), is(10_000));
+        assertThat(cache.get("key0"), is("value0"));
+    }
+
+    public void testThatLeastRecentlyUsedEntryIsEvicted() {
+        final ConcurrentLruCache<String, String> cache = cache(2, 0, 0);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        advance(ConcurrentLruCache.RECENCY_GRANULARITY_NANOS + 1);
+        assertThat(cache.get("a"), is("1"));
+        cache.put("c", "3");
+        assertThat(cache.count(), is(2));
+        assertThat(cache.get("a"), is("1"));
+        assertThat(cache.get("b"), nullValue());
+        assertThat(cache.get("c"), is("3"));
+    }
+
+    public void testThatEldestEntryIsEvictedWhenNoneWasRead() {
+        final ConcurrentLruCache<String, String> cache = cache(2, 0, 0);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        assertThat(cache.count(), is(2));
+        assertThat(cache.get("a"), nullValue());
+        assertThat(cache.get("b"), is("2"));
+        assertThat(cache.get("c"), is("3"));
+    }
+
+    public void testThatReplacedEntryIsNotEvictedForItsPreviousWrite() {
+        final ConcurrentLruCache<String, String> cache = cache(2, 0, 0);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("a", "3");
+        cache.put("c", "4");
+        assertThat(cache.count(), is(2));
+        assertThat(cache.get("a"), is("3"));
+        assertThat(cache.get("b"), nullValue());
+    }
+
+    public void testThatPutIfAbsentKeepsLiveValue() {
+        final ConcurrentLruCache<String, String> cache = cache(10, TTL, 0);
+        cache.put("a", "1");
+        cache.putIfAbsent("a", "");
+        assertThat(cache.get("a"), is("1"));
+        cache.putIfAbsent("b", "");
+        assertThat(cache.get("b"), is(""));
+    }
+
+    public void testThatPutIfAbsentReplacesExpiredValue() {
+        final ConcurrentLruCache<String, String> cache = cache(10, TTL, TTL);
+        cache.put("a", "1");
+        advance(TTL + 1);
+        cache.putIfAbsent("a", "");
+        assertThat(cache.get("a"), is(""));
+        advance(TTL);
+        assertThat(cache.get("a"), is(""));
+    }
+
+    public void testThatHitThroughputScalesWithThreads() throws Exception {
+        assumeTrue("benchmark, run with -Dtests.benchmark=true", Boolean.getBoolean("tests.benchmark"));
+
+        final ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<>(1000, TTL, 0);
+        final String[] keys = new String[300];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "api-" + i;
+            cache.put(keys[i], "API " + i);
+        }
+
+        final int iterations = 2_000_000;
+        final int processors = Runtime.getRuntime().availableProcessors();
+        long singleThreadThroughput = 0;
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int offset = t;
+                final Thread worker = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    for (int i = 0; i < iterations; i++) {
+                        if (cache.get(keys[(i + offset) % keys.length]) == null) {
+                            throw new AssertionError("Unexpected cache miss");
+                        }
+                    }
+                });
+                worker.start();
+                workers.add(worker);
+            }
+            final long startTime = System.nanoTime();
+            start.countDown();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            final long elapsed = Math.max(System.nanoTime() - startTime, 1);
+            final long throughput = (long) threads * iterations * 1_000_000_000L / elapsed;
+            logger.info("{} thread(s): {} cache hits/s", threads, throughput);
+
+            if (threads == 1) {
+                singleThreadThroughput = throughput;
+            } else if (threads <= processors) {
+                // Lock-free hits must not degrade when threads contend on the same hot keys. Beyond the number of
+                // processors, the curve is only logged, as throughput then also depends on scheduling.
+                assertThat(throughput, greaterThanOrEqualTo(singleThreadThroughput));
+            }
+        }
+    }
+}
@@ -17,7 +17,9 @@ package io.gravitee.elasticsearch.ingest.plugin;
 
 import com.github.tomakehurst.wiremock.client.WireMock;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
 import io.gravitee.elasticsearch.ingest.plugin.EnhanceGraviteeAttributionProcessor.Factory;
+import org.apache.http.client.ResponseHandler;
 import org.elasticsearch.action.admin.cluster.node.info.NodeInfo;
 import org.elasticsearch.action.admin.cluster.node.info.NodesInfoResponse;
 import org.elasticsearch.ingest.IngestDocument;
@@ -25,19 +27,29 @@ import org.elasticsearch.ingest.RandomDocumentPicks;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.plugins.PluginInfo;
 import org.elasticsearch.test.ESIntegTestCase;
+import org.elasticsearch.threadpool.ThreadPool;
 import org.junit.Before;
 import org.junit.ClassRule;
 
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 
 import static com.carrotsearch.randomizedtesting.RandomizedTest.randomAsciiAlphanumOfLength;
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
 import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.hamcrest.Matchers.*;
 
 /**
+ * The processor creation benchmark is only run with {@code -Dtests.benchmark=true}.
+ *
  * @author Azize ELAMRANI (azize.elamrani at graviteesource.com)
  * @author GraviteeSource Team
  */
@@ -46,6 +58,8 @@ public class GraviteePluginIntegrationTest extends ESIntegTestCase {
     @ClassRule
     public static final WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort());
 
+    private static final long CACHE_TTL_SECONDS = 60;
+
     private EnhanceGraviteeAttributionProcessor processor;
 
     @Override
@@ -65,6 +79,34 @@ public class GraviteePluginIntegrationTest extends ESIntegTestCase {
         processor = factory.create(Collections.emptyMap(), tag, config);
     }
 
+    private static EnhanceGraviteeAttributionProcessor createProcessor(EndpointConfiguration endpointConfiguration,
+                                                                       Map<String, Object> extraConfig) throws Exception {
+        return createProcessor(new Factory(endpointConfiguration), extraConfig);
+    }
+
+    private static EnhanceGraviteeAttributionProcessor createProcessor(Factory factory, Map<String, Object> extraConfig) throws Exception {
+        final Map<String, Object> config = new HashMap<>(extraConfig);
+        config.put("apiField", "api");
+        config.put("applicationField", "application");
+        return factory.create(Collections.emptyMap(), randomAsciiAlphanumOfLength(10), config);
+    }
+
+    private static void stubName(String path, String name) {
+        stubFor(WireMock.get(urlEqualTo(path))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("{\"name\": \"" + name + "\"}")));
+    }
+
+    /**
+     * Creates a processor only enhancing the API name, whose cache expiry is driven by the given clock.
+     */
+    private static EnhanceGraviteeAttributionProcessor createApiNameProcessor(LongSupplier nanoTime, boolean profile) {
+        final EndpointConfiguration endpointConfiguration = new EndpointConfiguration.Builder(wireMockRule.baseUrl()).cacheTtl(CACHE_TTL_SECONDS).build();
+        return new EnhanceGraviteeAttributionProcessor(randomAsciiAlphanumOfLength(10), singletonList(new ResourceNameIngestDocumentEnhancer(
+                endpointConfiguration, new ManagementApiClient(endpointConfiguration), "api", "api-name", "/apis", "name", nanoTime)), profile);
+    }
+
     public void testPluginIsLoaded() {
         NodesInfoResponse response = client().admin().cluster().prepareNodesInfo().setPlugins(true).get();
         for (NodeInfo nodeInfo : response.getNodes()) {
@@ -160,4 +202,336 @@ public class GraviteePluginIntegrationTest extends ESIntegTestCase {
         verify(0, getRequestedFor(urlEqualTo("/applications/321")));
     }
 
+    public void testThatProcessorRevalidatesExpiredValues() throws Exception {
+        stubFor(WireMock.get(urlEqualTo("/apis/123"))
+                .atPriority(2)
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("ETag", "\"v1\"")
+                        .withBody("{\"name\": \"My API name\"}")));
+        stubFor(WireMock.get(urlEqualTo("/apis/123"))
+                .atPriority(1)
+                .withHeader("If-None-Match", equalTo("\"v1\""))
+                .willReturn(aResponse()
+                        .withStatus(304)));
+
+        final AtomicLong clock = new AtomicLong();
+        final EnhanceGraviteeAttributionProcessor expiringProcessor = createApiNameProcessor(clock::get, false);
+
+        final Map<String, Object> document = new HashMap<>();
+        document.put("api", "123");
+        IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+        expiringProcessor.execute(ingestDocument);
+        assertThat(ingestDocument.getSourceAndMetadata().get("api-name"), is("My API name"));
+
+        clock.addAndGet(SECONDS.toNanos(CACHE_TTL_SECONDS + 1));
+        ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+        expiringProcessor.execute(ingestDocument);
+        assertThat(ingestDocument.getSourceAndMetadata().get("api-name"), is("My API name"));
+
+        verify(1, getRequestedFor(urlEqualTo("/apis/123")).withHeader("If-None-Match", equalTo("\"v1\"")));
+        verify(2, getRequestedFor(urlEqualTo("/apis/123")));
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testThatProcessorKeepsExpiredValuesWhenRevalidationFails() throws Exception {
+        stubFor(WireMock.get(urlEqualTo("/apis/555"))
+                .atPriority(2)
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("ETag", "\"v1\"")
+                        .withBody("{\"name\": \"My API name\"}")));
+        stubFor(WireMock.get(urlEqualTo("/apis/555"))
+                .atPriority(1)
+                .withHeader("If-None-Match", equalTo("\"v1\""))
+                .willReturn(aResponse()
+                        .withStatus(503)));
+
+        final AtomicLong clock = new AtomicLong();
+        final EnhanceGraviteeAttributionProcessor expiringProcessor = createApiNameProcessor(clock::get, true);
+
+        final Map<String, Object> document = new HashMap<>();
+        document.put("api", "555");
+        IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+        expiringProcessor.execute(ingestDocument);
+        assertThat(ingestDocument.getSourceAndMetadata().get("api-name"), is("My API name"));
+
+        clock.addAndGet(SECONDS.toNanos(CACHE_TTL_SECONDS + 1));
+        ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+        expiringProcessor.execute(ingestDocument);
+        assertThat(ingestDocument.getSourceAndMetadata().get("api-name"), is("My API name"));
+        Map<String, Object> profile = (Map<String, Object>) ingestDocument.getIngestMetadata().get("gravitee_profile");
+        assertThat(((Map<String, Object>) profile.get("api-name")).get("source"), is("stale"));
+
+        // Validators are kept, so the next revalidation is still conditional
+        clock.addAndGet(SECONDS.toNanos(CACHE_TTL_SECONDS + 1));
+        ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+        expiringProcessor.execute(ingestDocument);
+        assertThat(ingestDocument.getSourceAndMetadata().get("api-name"), is("My API name"));
+
+        verify(2, getRequestedFor(urlEqualTo("/apis/555")).withHeader("If-None-Match", equalTo("\"v1\"")));
+        verify(3, getRequestedFor(urlEqualTo("/apis/555")));
+    }
+
+    public void testThatProcessorKeepsExpiredValuesWithoutValidatorsWhenRefreshFails() {
+        resetAllScenarios();
+        stubFor(WireMock.get(urlEqualTo("/apis/556"))
+                .inScenario("Unavailable Management API")
+                .whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("{\"name\": \"My API name\"}"))
+                .willSetStateTo("Unavailable"));
+        stubFor(WireMock.get(urlEqualTo("/apis/556"))
+                .inScenario("Unavailable Management API")
+                .whenScenarioStateIs("Unavailable")
+                .willReturn(aResponse()
+                        .withStatus(503)));
+
+        final AtomicLong clock = new AtomicLong();
+        final EnhanceGraviteeAttributionProcessor expiringProcessor = createApiNameProcessor(clock::get, false);
+
+        final Map<String, Object> document = new HashMap<>();
+        document.put("api", "556");
+        IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+        expiringProcessor.execute(ingestDocument);
+        assertThat(ingestDocument.getSourceAndMetadata().get("api-name"), is("My API name"));
+
+        clock.addAndGet(SECONDS.toNanos(CACHE_TTL_SECONDS + 1));
+        ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+        expiringProcessor.execute(ingestDocument);
+        assertThat(ingestDocument.getSourceAndMetadata().get("api-name"), is("My API name"));
+
+        // Kept for another TTL
+        ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+        expiringProcessor.execute(ingestDocument);
+        assertThat(ingestDocument.getSourceAndMetadata().get("api-name"), is("My API name"));
+
+        verify(2, getRequestedFor(urlEqualTo("/apis/556")));
+    }
+
+    public void testThatCombinedLookupProcessorWorks() throws Exception {
+        stubName("/apis/123", "My API name");
+        stubName("/applications/321", "My app name");
+
+        final EnhanceGraviteeAttributionProcessor combinedProcessor = createProcessor(
+                new EndpointConfiguration.Builder(wireMockRule.baseUrl()).build(), singletonMap("combinedLookup", true));
+        assertThat(combinedProcessor.getDocumentEnhancers(), hasSize(1));
+        assertThat(combinedProcessor.getDocumentEnhancers().iterator().next(), instanceOf(ResourceNamePairIngestDocumentEnhancer.class));
+
+        final Map<String, Object> document = new HashMap<>();
+        document.put("api", "123");
+        document.put("application", "321");
+        for (int i = 0; i < 2; i++) {
+            IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+            combinedProcessor.execute(ingestDocument);
+            Map<String, Object> data = ingestDocument.getSourceAndMetadata();
+            assertThat(data.get("api-name"), is("My API name"));
+            assertThat(data.get("application-name"), is("My app name"));
+        }
+
+        verify(1, getRequestedFor(urlEqualTo("/apis/123")));
+        verify(1, getRequestedFor(urlEqualTo("/applications/321")));
+    }
+
+    public void testThatCombinedLookupProcessorResolvesMissesConcurrently() throws Exception {
+        stubName("/apis/456", "My API name");
+        stubName("/applications/654", "My app name");
+
+        final EndpointConfiguration endpointConfiguration = new EndpointConfiguration.Builder(wireMockRule.baseUrl()).build();
+        final CountDownLatch requests = new CountDownLatch(2);
+        final AtomicInteger overlappingRequests = new AtomicInteger();
+        final ManagementApiClient managementApiClient = new ManagementApiClient(endpointConfiguration) {
+            @Override
+            public <T> T requestForValue(String resourceBasePath, String resourceId, ResponseHandler<? extends T> responseHandler, T defaultValue) {
+                // Each request waits for the other one, which only arrives if they are sent concurrently
+                requests.countDown();
+                try {
+                    if (requests.await(10, SECONDS)) {
+                        overlappingRequests.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.requestForValue(resourceBasePath, resourceId, responseHandler, defaultValue);
+            }
+        };
+        final Factory factory = new Factory(endpointConfiguration, false, internalCluster().getInstance(ThreadPool.class).generic()) {
+            @Override
+            protected ManagementApiClient getManagementApiClient() {
+                return managementApiClient;
+            }
+        };
+        final EnhanceGraviteeAttributionProcessor combinedProcessor = createProcessor(factory, singletonMap("combinedLookup", true));
+
+        final Map<String, Object> document = new HashMap<>();
+        document.put("api", "456");
+        document.put("application", "654");
+        IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+        combinedProcessor.execute(ingestDocument);
+
+        assertThat(ingestDocument.getSourceAndMetadata().get("api-name"), is("My API name"));
+        assertThat(ingestDocument.getSourceAndMetadata().get("application-name"), is("My app name"));
+        assertThat(overlappingRequests.get(), is(2));
+    }
+
+    public void testThatCombinedLookupProcessorReadsNestedFields() throws Exception {
+        stubName("/apis/123", "My API name");
+        stubName("/applications/321", "My app name");
+
+        final Map<String, Object> config = new HashMap<>();
+        config.put("apiField", "request.api");
+        config.put("applicationField", "request.application");
+        config.put("combinedLookup", true);
+        final EnhanceGraviteeAttributionProcessor combinedProcessor = new Factory(new EndpointConfiguration.Builder(wireMockRule.baseUrl()).build())
+                .create(Collections.emptyMap(), randomAsciiAlphanumOfLength(10), config);
+
+        final Map<String, Object> request = new HashMap<>();
+        request.put("api", "123");
+        request.put("application", "321");
+        final IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), singletonMap("request", request));
+        combinedProcessor.execute(ingestDocument);
+        Map<String, Object> data = ingestDocument.getSourceAndMetadata();
+        assertThat(data.get("api-name"), is("My API name"));
+        assertThat(data.get("application-name"), is("My app name"));
+    }
+
+    public void testThatCombinedLookupProcessorHandlesPartialFailure() throws Exception {
+        stubName("/apis/789", "My API name");
+        stubFor(WireMock.get(urlEqualTo("/applications/987"))
+                .willReturn(aResponse()
+                        .withStatus(404)));
+
+        final EnhanceGraviteeAttributionProcessor combinedProcessor = createProcessor(
+                new EndpointConfiguration.Builder(wireMockRule.baseUrl()).build(), singletonMap("combinedLookup", true));
+
+        final Map<String, Object> document = new HashMap<>();
+        document.put("api", "789");
+        document.put("application", "987");
+        for (int i = 0; i < 2; i++) {
+            IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+            combinedProcessor.execute(ingestDocument);
+            Map<String, Object> data = ingestDocument.getSourceAndMetadata();
+            assertThat(data.get("api-name"), is("My API name"));
+            assertThat(data.get("application-name"), is(""));
+        }
+
+        verify(1, getRequestedFor(urlEqualTo("/apis/789")));
+        verify(1, getRequestedFor(urlEqualTo("/applications/987")));
+    }
+
+    public void testThatUnsetPropertiesAreNotReAddedToConfig() throws Exception {
+        final Map<String, Object> config = new HashMap<>();
+        config.put("apiField", "api");
+        config.put("applicationField", "application");
+        new Factory(new EndpointConfiguration.Builder(wireMockRule.baseUrl()).build(), true)
+                .create(Collections.emptyMap(), randomAsciiAlphanumOfLength(10), config);
+
+        assertThat(config, hasKey("apiField"));
+        assertThat(config, hasKey("applicationField"));
+        assertThat(config, not(hasKey("combinedLookup")));
+        assertThat(config, not(hasKey("profile")));
+
+        config.put("combinedLookup", true);
+        config.put("profile", true);
+        new Factory(new EndpointConfiguration.Builder(wireMockRule.baseUrl()).build(), true)
+                .create(Collections.emptyMap(), randomAsciiAlphanumOfLength(10), config);
+        assertThat(config.get("combinedLookup"), is(true));
+        assertThat(config.get("profile"), is(true));
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testThatProfileProcessorReportsResolutionSource() throws Exception {
+        stubName("/apis/123", "My API name");
+        stubFor(WireMock.get(urlEqualTo("/applications/321"))
+                .willReturn(aResponse()
+                        .withStatus(404)));
+
+        final EnhanceGraviteeAttributionProcessor profileProcessor = createProcessor(
+                new EndpointConfiguration.Builder(wireMockRule.baseUrl()).build(), singletonMap("profile", true));
+
+        final Map<String, Object> document = new HashMap<>();
+        document.put("api", "123");
+        document.put("application", "321");
+        IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+        profileProcessor.execute(ingestDocument);
+        Map<String, Object> profile = (Map<String, Object>) ingestDocument.getIngestMetadata().get("gravitee_profile");
+        assertThat(((Map<String, Object>) profile.get("api-name")).get("source"), is("remote"));
+        assertThat(((Map<String, Object>) profile.get("application-name")).get("source"), is("default"));
+        assertThat(((Map<String, Object>) profile.get("api-name")).get("took_nanos"), notNullValue());
+
+        ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+        profileProcessor.execute(ingestDocument);
+        profile = (Map<String, Object>) ingestDocument.getIngestMetadata().get("gravitee_profile");
+        assertThat(((Map<String, Object>) profile.get("api-name")).get("source"), is("cache_hit"));
+        assertThat(((Map<String, Object>) profile.get("application-name")).get("source"), is("negative_cache"));
+    }
+
+    public void testThatProfileProcessorKeepsEntriesOfSameClassEnhancers() {
+        final EnhanceGraviteeAttributionProcessor profileProcessor = new EnhanceGraviteeAttributionProcessor(
+                randomAsciiAlphanumOfLength(10), Arrays.asList(fieldSetter("first"), fieldSetter("second")), true);
+
+        final IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), new HashMap<>());
+        profileProcessor.execute(ingestDocument);
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> profile = (Map<String, Object>) ingestDocument.getIngestMetadata().get("gravitee_profile");
+        assertThat(profile.size(), is(2));
+        assertThat(profile.keySet(), everyItem(either(endsWith("[0]")).or(endsWith("[1]"))));
+    }
+
+    private static IngestDocumentEnhancer fieldSetter(String field) {
+        return ingestDocument -> ingestDocument.setFieldValue(field, "value");
+    }
+
+    public void testThatProcessorCreationIsCheap() throws Exception {
+        stubName("/apis/123", "My API name");
+
+        final Factory factory = new Factory(new EndpointConfiguration.Builder(wireMockRule.baseUrl()).build());
+        final List<EnhanceGraviteeAttributionProcessor> createdProcessors = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            createdProcessors.add(createProcessor(factory, Collections.emptyMap()));
+        }
+        // Processors share a single client, whose HTTP client and SSL context are not built yet
+        assertThat(factory.getManagementApiClient().isInitialized(), is(false));
+        verify(0, getRequestedFor(anyUrl()));
+
+        final Map<String, Object> document = new HashMap<>();
+        document.put("api", "123");
+        for (EnhanceGraviteeAttributionProcessor createdProcessor : createdProcessors.subList(0, 2)) {
+            IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+            createdProcessor.execute(ingestDocument);
+            assertThat(ingestDocument.getSourceAndMetadata().get("api-name"), is("My API name"));
+            assertThat(factory.getManagementApiClient().isInitialized(), is(true));
+        }
+    }
+
+    public void testThatProcessorCreationTimeIsIndependentOfHttpClient() throws Exception {
+        assumeTrue("benchmark, run with -Dtests.benchmark=true", Boolean.getBoolean("tests.benchmark"));
+        stubName("/apis/123", "My API name");
+
+        final Factory factory = new Factory(new EndpointConfiguration.Builder(wireMockRule.baseUrl()).build());
+        final int processors = 1_000;
+        final List<EnhanceGraviteeAttributionProcessor> createdProcessors = new ArrayList<>(processors);
+        final long startTime = System.nanoTime();
+        for (int i = 0; i < processors; i++) {
+            createdProcessors.add(createProcessor(factory, Collections.emptyMap()));
+        }
+        final long creationNanos = System.nanoTime() - startTime;
+        assertThat(factory.getManagementApiClient().isInitialized(), is(false));
+
+        final Map<String, Object> document = new HashMap<>();
+        document.put("api", "123");
+        final IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+        final long firstExecutionStartTime = System.nanoTime();
+        createdProcessors.get(0).execute(ingestDocument);
+        final long firstExecutionNanos = System.nanoTime() - firstExecutionStartTime;
+        assertThat(ingestDocument.getSourceAndMetadata().get("api-name"), is("My API name"));
+        assertThat(factory.getManagementApiClient().isInitialized(), is(true));
+
+        logger.info("{} processors created in {} ms, first execution building the HTTP client took {} ms",
+                processors, creationNanos / 1_000_000, firstExecutionNanos / 1_000_000);
+        // Creating a processor must not pay for the HTTP client and its SSL context
+        assertThat(creationNanos / processors, lessThan(firstExecutionNanos));
+    }
+
 }